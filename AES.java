@@ -0,0 +1,68 @@
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+public class AES {
+    private static final int BLOCK_SIZE = 16;
+    private static final BigInteger COUNTER_MODULUS = BigInteger.ONE.shiftLeft(BLOCK_SIZE * 8);
+
+    private final SecretKey key;
+    private final byte[] iv;
+
+    public AES() {
+        // Fresh 128 bit key and initial counter for every file
+        SecureRandom random = new SecureRandom();
+        byte[] keyBytes = new byte[BLOCK_SIZE];
+        random.nextBytes(keyBytes);
+        key = new SecretKeySpec(keyBytes, "AES");
+        iv = new byte[BLOCK_SIZE];
+        random.nextBytes(iv);
+    }
+
+    public AES(String encodedKey) {
+        String[] parts = encodedKey.split(":");
+        key = new SecretKeySpec(Base64.getDecoder().decode(parts[0]), "AES");
+        iv = Base64.getDecoder().decode(parts[1]);
+    }
+
+    public String getKey() {
+        Base64.Encoder encoder = Base64.getEncoder();
+        return encoder.encodeToString(key.getEncoded()) + ":" + encoder.encodeToString(iv);
+    }
+
+    // CTR mode keeps ciphertext the same length as the file and lets a transfer
+    // resume at any byte offset, so the same cipher both encrypts and decrypts
+    public Cipher cipherAt(long offset) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
+
+        BigInteger counter = new BigInteger(1, iv)
+                .add(BigInteger.valueOf(offset / BLOCK_SIZE))
+                .mod(COUNTER_MODULUS);
+        byte[] counterBytes = counter.toByteArray();
+        byte[] block = new byte[BLOCK_SIZE];
+        int length = Math.min(counterBytes.length, BLOCK_SIZE);
+        System.arraycopy(counterBytes, counterBytes.length - length, block, BLOCK_SIZE - length, length);
+
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(block));
+
+            // Skip the part of the first block that was already transferred
+            int skip = (int) (offset % BLOCK_SIZE);
+            if (skip > 0) {
+                cipher.update(new byte[skip]);
+            }
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot initialize file cipher: " + e.getMessage(), e);
+        }
+    }
+}
@@ -2,9 +2,26 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.prefs.Preferences;
+import javax.crypto.Cipher;
 
 public class Client {
+    private static final int MAX_TRANSFER_ATTEMPTS = 3;
+
     private JFrame frame;
     private JTabbedPane tabbedPane;
     private JPanel loginPanel, registerPanel, chatPanel;
@@ -14,13 +31,23 @@ public class Client {
     private JPasswordField regPassField, regConfirmPassField;
     private JTextArea chatArea;
     private JTextField messageField;
-    private JButton loginButton, registerButton, sendButton;
+    private JButton loginButton, registerButton, sendButton, sendFileButton, receiveFileButton;
+    private JProgressBar transferProgress;
 
     private Socket socket;
     private PrintWriter out;
     private BufferedReader in;
     private RSA rsa;
     private String username;
+    private String serverHost;
+    private int idleTimeoutMs;
+    private final ScheduledExecutorService transferWatchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "transfer-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Queue<PendingUpload> pendingUploads = new ConcurrentLinkedQueue<>();
+    private final Map<String, SharedFile> sharedFiles = new LinkedHashMap<>();  // EDT only
     private Preferences prefs = Preferences.userNodeForPackage(Client.class);
 
     public Client() {
@@ -143,8 +170,27 @@ public class Client {
         sendButton.setEnabled(false);
         sendButton.addActionListener(e -> sendMessage());
 
+        sendFileButton = new JButton("Send File");
+        sendFileButton.setEnabled(false);
+        sendFileButton.addActionListener(e -> sendFile());
+
+        receiveFileButton = new JButton("Receive File");
+        receiveFileButton.setEnabled(false);
+        receiveFileButton.addActionListener(e -> receiveFile());
+
+        JPanel buttonPanel = new JPanel();
+        buttonPanel.add(sendButton);
+        buttonPanel.add(sendFileButton);
+        buttonPanel.add(receiveFileButton);
+
+        // Transfer progress
+        transferProgress = new JProgressBar(0, 100);
+        transferProgress.setStringPainted(true);
+        transferProgress.setString("No file transfers");
+
+        inputPanel.add(transferProgress, BorderLayout.NORTH);
         inputPanel.add(messageField, BorderLayout.CENTER);
-        inputPanel.add(sendButton, BorderLayout.EAST);
+        inputPanel.add(buttonPanel, BorderLayout.EAST);
         chatPanel.add(inputPanel, BorderLayout.SOUTH);
     }
 
@@ -203,6 +249,7 @@ public class Client {
     }
 
     private void connectToServer(String server, String action, String data) throws IOException {
+        serverHost = server;
         socket = new Socket(server, 12345);
         out = new PrintWriter(socket.getOutputStream(), true);
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -224,6 +271,14 @@ public class Client {
                 throw new IOException("Invalid username or password");
             }
 
+            // HEARTBEAT <intervalMs> <idleTimeoutMs>
+            String[] heartbeat = String.valueOf(in.readLine()).split(" ");
+            if (heartbeat.length != 3 || !"HEARTBEAT".equals(heartbeat[0])) {
+                throw new IOException("Unexpected response from server");
+            }
+            // Give the server a full extra interval before treating it as gone
+            idleTimeoutMs = Integer.parseInt(heartbeat[2]) + Integer.parseInt(heartbeat[1]);
+
             // Switch to chat view
             tabbedPane.removeAll();
             frame.getContentPane().remove(tabbedPane);
@@ -233,8 +288,11 @@ public class Client {
 
             messageField.setEnabled(true);
             sendButton.setEnabled(true);
+            sendFileButton.setEnabled(true);
             chatArea.append("Connected as " + username + "\n");
 
+            socket.setSoTimeout(idleTimeoutMs);
+
             // Start message listener
             new Thread(this::listenForMessages).start();
         } else if (action.equals("REGISTER")) {
@@ -248,6 +306,36 @@ public class Client {
         try {
             String message;
             while ((message = in.readLine()) != null) {
+                if ("PING".equals(message)) {
+                    sendLine("PONG");
+                    continue;
+                }
+                if ("FILE_UPLOAD".equals(message)) {
+                    // Offers are answered in order, so this belongs to the oldest pending upload
+                    String[] parts = rsa.decrypt(in.readLine()).split(":", 2);
+                    PendingUpload upload = pendingUploads.poll();
+                    if (upload != null) {
+                        new Thread(() -> uploadFile(upload, parts[0], new AES(parts[1]))).start();
+                    }
+                    continue;
+                }
+                if ("FILE_REJECTED".equals(message)) {
+                    String reason = rsa.decrypt(in.readLine());
+                    PendingUpload upload = pendingUploads.poll();
+                    appendChat("Server rejected " + (upload != null ? upload.file.getName() : "file") + ": " + reason);
+                    continue;
+                }
+                if ("FILE_AVAILABLE".equals(message)) {
+                    SharedFile file = new SharedFile(rsa.decrypt(in.readLine()));
+                    SwingUtilities.invokeLater(() -> {
+                        sharedFiles.put(file.id, file);
+                        receiveFileButton.setEnabled(true);
+                        chatArea.append(file.sender + " shared " + file.name + " (" +
+                                FileTransfer.formatSize(file.size) + "), use Receive File to download it\n");
+                    });
+                    continue;
+                }
+
                 String decrypted = rsa.decrypt(message);
                 SwingUtilities.invokeLater(() -> {
                     chatArea.append(decrypted + "\n");
@@ -266,7 +354,7 @@ public class Client {
         if (message.isEmpty()) return;
 
         try {
-            out.println(rsa.encrypt(message));
+            sendLine(rsa.encrypt(message));
             chatArea.append("You: " + message + "\n");
             messageField.setText("");
         } catch (IOException e) {
@@ -274,11 +362,202 @@ public class Client {
         }
     }
 
+    private void sendFile() {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+
+        File file = chooser.getSelectedFile();
+        if (!file.isFile() || file.length() == 0) {
+            showError("Please choose a non-empty file");
+            return;
+        }
+
+        PendingUpload upload = new PendingUpload(file, file.length());
+        try {
+            pendingUploads.add(upload);
+            sendCommand("FILE_OFFER", upload.size + ":" + file.getName());
+            chatArea.append("Offering " + file.getName() + " (" + FileTransfer.formatSize(upload.size) + ")\n");
+        } catch (IOException e) {
+            pendingUploads.remove(upload);
+            showError("Failed to offer file: " + e.getMessage());
+        }
+    }
+
+    private void receiveFile() {
+        SharedFile file = (SharedFile) JOptionPane.showInputDialog(frame, "Choose a file to download:",
+                "Receive File", JOptionPane.PLAIN_MESSAGE, null, sharedFiles.values().toArray(), null);
+        if (file == null) return;
+
+        JFileChooser chooser = new JFileChooser();
+        chooser.setSelectedFile(new File(file.name));
+        if (chooser.showSaveDialog(frame) != JFileChooser.APPROVE_OPTION) return;
+
+        File target = chooser.getSelectedFile();
+        new Thread(() -> downloadFile(file, target)).start();
+    }
+
+    // Encrypts straight from the file into direct buffers; the server asks for
+    // the offset it already has, so a dropped connection resumes where it stopped
+    private void uploadFile(PendingUpload upload, String id, AES aes) {
+        File file = upload.file;
+        long size = upload.size;
+
+        for (int attempt = 1; ; attempt++) {
+            // The server expects exactly the offered length, resuming wouldn't help
+            if (file.length() != size) {
+                appendChat("Upload of " + file.getName() + " failed: the file changed size from " +
+                        FileTransfer.formatSize(size) + " to " + FileTransfer.formatSize(file.length()) +
+                        " since it was offered");
+                showProgress("Upload of " + file.getName() + " failed", 0, 1);
+                return;
+            }
+
+            try (SocketChannel channel = SocketChannel.open();
+                 TransferWatchdog watchdog = new TransferWatchdog(channel);
+                 FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                channel.connect(new InetSocketAddress(serverHost, FileTransfer.PORT));
+                FileTransfer.writeLine(channel, "PUT " + id);
+                long position = FileTransfer.readReply(channel);
+
+                Cipher cipher = aes.cipherAt(position);
+                ByteBuffer plain = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+                ByteBuffer encrypted = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+
+                while (position < size) {
+                    plain.clear();
+                    plain.limit((int) Math.min(plain.capacity(), size - position));
+                    int count = source.read(plain, position);
+                    if (count < 0) throw new EOFException(file.getName() + " changed during upload");
+                    plain.flip();
+
+                    encrypted.clear();
+                    cipher.update(plain, encrypted);
+                    encrypted.flip();
+                    while (encrypted.hasRemaining()) {
+                        if (channel.write(encrypted) > 0) watchdog.progress();
+                    }
+
+                    position += count;
+                    showProgress("Uploading " + file.getName(), position, size);
+                }
+
+                appendChat("Sent " + file.getName());
+                showProgress("Sent " + file.getName(), size, size);
+                return;
+            } catch (IOException | GeneralSecurityException e) {
+                if (!retryTransfer("Upload of " + file.getName(), attempt, e)) return;
+            }
+        }
+    }
+
+    private void downloadFile(SharedFile file, File target) {
+        // The partial file is named after the transfer id so only the same file is resumed
+        File partial = new File(target.getAbsoluteFile().getParentFile(), target.getName() + "." + file.id + ".part");
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                try (SocketChannel channel = SocketChannel.open();
+                     TransferWatchdog watchdog = new TransferWatchdog(channel);
+                     FileChannel destination = FileChannel.open(partial.toPath(),
+                             StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    channel.connect(new InetSocketAddress(serverHost, FileTransfer.PORT));
+                    long position = destination.size();
+                    FileTransfer.writeLine(channel, "GET " + file.id + " " + position);
+                    long size = FileTransfer.readReply(channel);
+
+                    Cipher cipher = file.key.cipherAt(position);
+                    ByteBuffer encrypted = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+                    ByteBuffer plain = ByteBuffer.allocateDirect(FileTransfer.CHUNK_SIZE);
+
+                    while (position < size) {
+                        encrypted.clear();
+                        encrypted.limit((int) Math.min(encrypted.capacity(), size - position));
+                        if (channel.read(encrypted) < 0) throw new EOFException("Server closed the connection");
+                        watchdog.progress();
+                        encrypted.flip();
+
+                        plain.clear();
+                        cipher.update(encrypted, plain);
+                        plain.flip();
+                        while (plain.hasRemaining()) {
+                            position += destination.write(plain, position);
+                        }
+
+                        showProgress("Downloading " + file.name, position, size);
+                    }
+                }
+
+                Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                appendChat("Saved " + file.name + " to " + target.getAbsolutePath());
+                showProgress("Received " + file.name, 1, 1);
+                return;
+            } catch (FileTransfer.RejectedException e) {
+                // Typically expired on the server, so the partial copy and the listing are useless now
+                partial.delete();
+                SwingUtilities.invokeLater(() -> {
+                    sharedFiles.remove(file.id);
+                    receiveFileButton.setEnabled(!sharedFiles.isEmpty());
+                });
+                retryTransfer("Download of " + file.name, attempt, e);
+                return;
+            } catch (IOException | GeneralSecurityException e) {
+                if (!retryTransfer("Download of " + file.name, attempt, e)) return;
+            }
+        }
+    }
+
+    private boolean retryTransfer(String transfer, int attempt, Exception e) {
+        // Only the watchdog closes a transfer channel from another thread
+        String reason = e instanceof AsynchronousCloseException
+                ? "no progress for " + idleTimeoutMs / 1000 + "s" : e.getMessage();
+
+        if (attempt >= MAX_TRANSFER_ATTEMPTS || e instanceof FileTransfer.RejectedException) {
+            appendChat(transfer + " failed: " + reason);
+            showProgress(transfer + " failed", 0, 1);
+            return false;
+        }
+
+        appendChat(transfer + " interrupted (" + reason + "), resuming...");
+        try {
+            Thread.sleep(attempt * 1000L);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    private void showProgress(String label, long done, long total) {
+        int percent = (int) (done * 100 / total);
+        SwingUtilities.invokeLater(() -> {
+            transferProgress.setValue(percent);
+            transferProgress.setString(label + " " + percent + "%");
+        });
+    }
+
+    private void appendChat(String text) {
+        SwingUtilities.invokeLater(() -> chatArea.append(text + "\n"));
+    }
+
+    // Commands are a plain keyword line followed by one encrypted line,
+    // so every write to the server goes through the same lock
+    private synchronized void sendCommand(String command, String payload) throws IOException {
+        String encrypted = rsa.encrypt(payload);
+        out.println(command);
+        out.println(encrypted);
+    }
+
+    private synchronized void sendLine(String line) {
+        out.println(line);
+    }
+
     private void resetConnection() {
         try {
             if (socket != null) socket.close();
             if (out != null) out.close();
             if (in != null) in.close();
+            pendingUploads.clear();
+            sharedFiles.clear();
 
             frame.remove(chatPanel);
             tabbedPane = new JTabbedPane();
@@ -304,6 +583,71 @@ public class Client {
         JOptionPane.showMessageDialog(frame, message);
     }
 
+    // Blocking channels ignore SO_TIMEOUT, so a server that vanishes mid-transfer would
+    // hang read()/write() forever; closing the channel lets the retry and resume path run
+    private class TransferWatchdog implements AutoCloseable {
+        private final SocketChannel channel;
+        private final ScheduledFuture<?> check;
+        private volatile long lastProgress = System.currentTimeMillis();
+
+        public TransferWatchdog(SocketChannel channel) {
+            this.channel = channel;
+            this.check = transferWatchdog.scheduleAtFixedRate(this::closeIfStalled, 1, 1, TimeUnit.SECONDS);
+        }
+
+        public void progress() {
+            lastProgress = System.currentTimeMillis();
+        }
+
+        private void closeIfStalled() {
+            if (System.currentTimeMillis() - lastProgress > idleTimeoutMs) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            check.cancel(false);
+        }
+    }
+
+    private static class PendingUpload {
+        private final File file;
+        private final long size;  // as sent in FILE_OFFER
+
+        public PendingUpload(File file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private static class SharedFile {
+        private final String id;
+        private final long size;
+        private final String sender;
+        private final AES key;
+        private final String name;
+
+        // id:size:sender:key:iv:name
+        public SharedFile(String announcement) {
+            String[] parts = announcement.split(":", 6);
+            id = parts[0];
+            size = Long.parseLong(parts[1]);
+            sender = parts[2];
+            key = new AES(parts[3] + ":" + parts[4]);
+            name = new File(parts[5]).getName();  // never trust a path from the network
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + FileTransfer.formatSize(size) + ") from " + sender;
+        }
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(Client::new);
     }
@@ -0,0 +1,70 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+public class FileTransfer {
+    public static final int PORT = 12346;
+    public static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_LINE_LENGTH = 256;
+
+    private FileTransfer() {
+    }
+
+    // The server refused the request ("ERR ..."), retrying the same request won't help
+    public static class RejectedException extends IOException {
+        public RejectedException(String reason) {
+            super(reason);
+        }
+    }
+
+    // Reads one byte at a time so no file data following the header gets consumed
+    public static String readLine(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1);
+        StringBuilder line = new StringBuilder();
+
+        while (true) {
+            buffer.clear();
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+
+            char c = (char) buffer.get(0);
+            if (c == '\n') {
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            line.append(c);
+        }
+    }
+
+    public static void writeLine(WritableByteChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Replies are "OK <number>" or "ERR <reason>"
+    public static long readReply(ReadableByteChannel channel) throws IOException {
+        String reply = readLine(channel);
+        if (reply.startsWith("ERR ")) {
+            throw new RejectedException(reply.substring(4));
+        }
+        if (!reply.startsWith("OK ")) {
+            throw new IOException("Unexpected reply: " + reply);
+        }
+        return Long.parseLong(reply.substring(3));
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format("%.1f KB", bytes / 1024.0);
+        if (bytes < 1024L * 1024 * 1024) return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
+    }
+}
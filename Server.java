@@ -2,20 +2,49 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Server {
+    // Keepalive settings, overridable with -Dchat.heartbeatIntervalMs / -Dchat.idleTimeoutMs
+    private static final int IDLE_TIMEOUT_MS = Math.max(1000, Integer.getInteger("chat.idleTimeoutMs", 45000));
+    private static final int CONFIGURED_HEARTBEAT_MS = Integer.getInteger("chat.heartbeatIntervalMs", 15000);
+    // A session must get at least two pings before it can go idle, otherwise every client times out
+    private static final int HEARTBEAT_INTERVAL_MS =
+            CONFIGURED_HEARTBEAT_MS > 0 && CONFIGURED_HEARTBEAT_MS <= IDLE_TIMEOUT_MS / 2
+                    ? CONFIGURED_HEARTBEAT_MS : IDLE_TIMEOUT_MS / 3;
+    private static final long MAX_FILE_SIZE = Long.getLong("chat.maxFileSizeBytes", 1L << 30);
+    private static final long USER_STAGING_QUOTA = Long.getLong("chat.userStagingQuotaBytes", 2L << 30);
+    private static final long TOTAL_STAGING_QUOTA = Long.getLong("chat.stagingQuotaBytes", 8L << 30);
+    // Staged files (and offers never uploaded) are dropped after this long without uploads or downloads
+    private static final long STAGED_FILE_TTL_MS = Long.getLong("chat.stagedFileTtlMs", 60 * 60 * 1000L);
+
     private JFrame frame;
     private JTextArea logArea;
     private JButton startButton, stopButton;
     private ServerSocket serverSocket;
+    private ServerSocketChannel fileServer;
     private ExecutorService threadPool;
+    private ScheduledExecutorService reaper;
     private Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
     private Map<String, String> userDatabase = new ConcurrentHashMap<>();
+    private Map<String, StagedFile> stagedFiles = new ConcurrentHashMap<>();
+    private Set<FileTransferHandler> transfers = ConcurrentHashMap.newKeySet();
+    private final File uploadDir = new File("uploads");
     private BufferedWriter chatLogger;
     private SimpleDateFormat timestampFormat = new SimpleDateFormat("[yyyy-MM-dd HH:mm:ss] ");
+    private final AtomicLong reapedConnections = new AtomicLong();
+    private final AtomicLong encryptionsAvoided = new AtomicLong();
+    private final AtomicLong reapedTransfers = new AtomicLong();
+    // Logged-in users whose session was reaped and who haven't logged back in since
+    private final Set<String> reapedSessions = ConcurrentHashMap.newKeySet();
 
     public Server() {
         initializeGUI();
@@ -102,42 +131,99 @@ public class Server {
     }
 
     private void startServer() {
+        // Bind both ports before touching any state so a busy port leaves nothing half started
         try {
             serverSocket = new ServerSocket(12345);
-            threadPool = Executors.newCachedThreadPool();
-
-            startButton.setEnabled(false);
-            stopButton.setEnabled(true);
-            log("Server started on port 12345");
-
-            threadPool.execute(() -> {
-                while (!serverSocket.isClosed()) {
-                    try {
-                        Socket socket = serverSocket.accept();
-                        ClientHandler handler = new ClientHandler(socket);
-                        threadPool.execute(handler);
-                    } catch (IOException e) {
-                        if (!serverSocket.isClosed()) {
-                            log("Error accepting connection: " + e.getMessage());
-                        }
-                    }
-                }
-            });
         } catch (IOException e) {
-            log("Failed to start server: " + e.getMessage());
+            log("Failed to start server on port 12345: " + e.getMessage());
+            return;
+        }
+        try {
+            fileServer = ServerSocketChannel.open();
+            fileServer.bind(new InetSocketAddress(FileTransfer.PORT));
+        } catch (IOException e) {
+            log("Failed to start server: file transfer port " + FileTransfer.PORT + " unavailable: " + e.getMessage());
+            try {
+                serverSocket.close();
+                if (fileServer != null) fileServer.close();
+            } catch (IOException ce) {
+                log("Error releasing ports: " + ce.getMessage());
+            }
+            return;
+        }
+
+        // Nothing can reach uploads/ yet, so leftovers are cleared before accepting connections
+        uploadDir.mkdirs();
+        clearUploadDir();
+
+        threadPool = Executors.newCachedThreadPool();
+
+        startButton.setEnabled(false);
+        stopButton.setEnabled(true);
+        log("Server started on port 12345");
+
+        reaper = Executors.newSingleThreadScheduledExecutor();
+        reaper.scheduleAtFixedRate(this::reapIdleClients,
+                HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (HEARTBEAT_INTERVAL_MS != CONFIGURED_HEARTBEAT_MS) {
+            log("Heartbeat interval " + CONFIGURED_HEARTBEAT_MS + " ms must be positive and at most half the idle timeout");
         }
+        log("Heartbeat every " + HEARTBEAT_INTERVAL_MS + " ms, idle timeout " + IDLE_TIMEOUT_MS + " ms");
+
+        threadPool.execute(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    ClientHandler handler = new ClientHandler(socket);
+                    threadPool.execute(handler);
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        log("Error accepting connection: " + e.getMessage());
+                    }
+                }
+            }
+        });
+
+        log("File transfers on port " + FileTransfer.PORT + ", staged in " + uploadDir.getAbsolutePath());
+
+        threadPool.execute(() -> {
+            while (fileServer.isOpen()) {
+                try {
+                    SocketChannel channel = fileServer.accept();
+                    threadPool.execute(new FileTransferHandler(channel));
+                } catch (IOException e) {
+                    if (fileServer.isOpen()) {
+                        log("Error accepting file connection: " + e.getMessage());
+                    }
+                }
+            }
+        });
     }
 
     private void stopServer() {
         try {
+            reaper.shutdownNow();
             for (ClientHandler client : clients.values()) {
                 client.disconnect();
             }
             clients.clear();
+            for (FileTransferHandler transfer : transfers) {
+                transfer.close();
+            }
 
             serverSocket.close();
+            fileServer.close();
+
+            // Staged files are only reachable through ids held in memory
+            for (StagedFile file : stagedFiles.values()) {
+                deleteStagedFile(file);
+            }
+            stagedFiles.clear();
             threadPool.shutdown();
             saveUserDatabase();
+            log("Reaped " + reapedConnections.get() + " idle chat connections, avoided " +
+                    encryptionsAvoided.get() + " broadcast encryptions to reaped sessions");
+            log("Reaped " + reapedTransfers.get() + " stalled file transfer connections");
 
             if (chatLogger != null) {
                 chatLogger.close();
@@ -153,6 +239,8 @@ public class Server {
 
     private void broadcast(String message, ClientHandler sender) {
         log("Broadcasting: " + message);
+        // Without reaping, each of these stale sessions would still be in the map and get its own RSA encryption
+        encryptionsAvoided.addAndGet(reapedSessions.size());
         for (ClientHandler client : clients.values()) {
             if (client != sender) {
                 client.sendMessage(message);
@@ -160,6 +248,77 @@ public class Server {
         }
     }
 
+    // Anything already in uploads/ is left over from a crash, its ids are gone with the old process
+    private void clearUploadDir() {
+        File[] stale = uploadDir.listFiles();
+        if (stale == null || stale.length == 0) return;
+
+        int removed = 0;
+        for (File file : stale) {
+            if (file.isFile() && file.delete()) {
+                removed++;
+            }
+        }
+        log("Removed " + removed + " stale staged files from " + uploadDir.getPath());
+    }
+
+    private void deleteStagedFile(StagedFile file) {
+        // On Windows a file still open for a transfer can't be deleted; startup cleanup gets it later
+        if (file.path.exists() && !file.path.delete()) {
+            log("Could not delete staged file " + file.path.getPath() + " (" + file.name + ")");
+        }
+    }
+
+    private void announceFile(StagedFile file) {
+        log(file.sender + " shared " + file.name + " (" + FileTransfer.formatSize(file.size) + ")");
+        String payload = file.id + ":" + file.size + ":" + file.sender + ":" + file.key.getKey() + ":" + file.name;
+        for (ClientHandler client : clients.values()) {
+            if (!client.username.equals(file.sender)) {
+                client.sendCommand("FILE_AVAILABLE", payload);
+            }
+        }
+    }
+
+    private void reapIdleClients() {
+        try {
+            long now = System.currentTimeMillis();
+            for (FileTransferHandler transfer : transfers) {
+                long idle = now - transfer.lastSeen;
+                if (idle > IDLE_TIMEOUT_MS) {
+                    reapedTransfers.incrementAndGet();
+                    log("Reaping stalled file transfer from " + transfer.channel.socket().getRemoteSocketAddress() +
+                            ": no progress for " + idle / 1000 + "s");
+                    transfer.close();
+                }
+            }
+            for (StagedFile file : stagedFiles.values()) {
+                boolean expire;
+                synchronized (file) {
+                    // Marking it expired keeps a late PUT from writing into a deleted file
+                    expire = file.uploader == null && now - file.lastActivity > STAGED_FILE_TTL_MS;
+                    file.expired |= expire;
+                }
+                if (expire) {
+                    stagedFiles.remove(file.id);
+                    deleteStagedFile(file);
+                    log("Expired staged file " + file.name + " from " + file.sender +
+                            (file.complete ? "" : " (upload never completed)"));
+                }
+            }
+            for (ClientHandler client : clients.values()) {
+                long idle = now - client.lastSeen;
+                if (idle > IDLE_TIMEOUT_MS) {
+                    client.reap("no heartbeat for " + idle / 1000 + "s");
+                } else {
+                    client.ping();
+                }
+            }
+        } catch (Exception e) {
+            // An exception would cancel the scheduled task, so just log it
+            log("Error during heartbeat: " + e.getMessage());
+        }
+    }
+
     private class ClientHandler implements Runnable {
         private final Socket socket;
         private PrintWriter out;
@@ -167,6 +326,8 @@ public class Server {
         private final RSA rsa = new RSA();
         private String username;
         private boolean authenticated = false;
+        private final AtomicBoolean disconnected = new AtomicBoolean();
+        private volatile long lastSeen = System.currentTimeMillis();
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -175,6 +336,8 @@ public class Server {
         @Override
         public void run() {
             try {
+                // A dead peer never sends FIN, so don't let readLine() block forever
+                socket.setSoTimeout(IDLE_TIMEOUT_MS);
                 in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
                 out = new PrintWriter(socket.getOutputStream(), true);
 
@@ -205,11 +368,20 @@ public class Server {
                     String encrypted = in.readLine();
                     if (encrypted == null) break;
 
+                    lastSeen = System.currentTimeMillis();
+                    if ("PONG".equals(encrypted)) continue;
+                    if ("FILE_OFFER".equals(encrypted)) {
+                        handleFileOffer();
+                        continue;
+                    }
+
                     String message = rsa.decrypt(encrypted);
                     log(username + ": " + message);
                     broadcast(username + ": " + message, this);
                 }
 
+            } catch (SocketTimeoutException e) {
+                reap("read timed out");
             } catch (Exception e) {
                 log("Client error: " + e.getMessage());
             } finally {
@@ -227,8 +399,15 @@ public class Server {
 
                 username = parts[0];
                 authenticated = true;
+                // The client expects exactly these two lines, so no ping or broadcast may
+                // reach this handler before they are written
+                synchronized (this) {
+                    out.println("LOGIN_SUCCESS");
+                    // Let the client derive its own read timeout from our settings
+                    out.println("HEARTBEAT " + HEARTBEAT_INTERVAL_MS + " " + IDLE_TIMEOUT_MS);
+                }
                 clients.put(username, this);
-                out.println("LOGIN_SUCCESS");
+                reapedSessions.remove(username);
                 log(username + " logged in successfully");
                 broadcast(username + " joined the chat", this);
             } else {
@@ -264,7 +443,61 @@ public class Server {
             }
         }
 
-        public void sendMessage(String message) {
+        private void handleFileOffer() throws IOException {
+            String[] parts = rsa.decrypt(in.readLine()).split(":", 2);
+            long size;
+            try {
+                size = parts.length == 2 ? Long.parseLong(parts[0]) : -1;
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+
+            if (size <= 0 || size > MAX_FILE_SIZE) {
+                sendCommand("FILE_REJECTED", "Files must be between 1 byte and " + FileTransfer.formatSize(MAX_FILE_SIZE));
+                return;
+            }
+
+            StagedFile file = new StagedFile(parts[1], username, size);
+            String rejection = null;
+            synchronized (stagedFiles) {
+                // Offers reserve their full size until they expire, uploaded or not
+                long userTotal = 0, total = 0;
+                for (StagedFile staged : stagedFiles.values()) {
+                    total += staged.size;
+                    if (staged.sender.equals(username)) userTotal += staged.size;
+                }
+
+                if (userTotal + size > USER_STAGING_QUOTA) {
+                    rejection = "You already have " + FileTransfer.formatSize(userTotal) + " staged, the limit is " +
+                            FileTransfer.formatSize(USER_STAGING_QUOTA);
+                } else if (total + size > TOTAL_STAGING_QUOTA) {
+                    rejection = "Server staging space is full, try again later";
+                } else {
+                    stagedFiles.put(file.id, file);
+                }
+            }
+            if (rejection != null) {
+                sendCommand("FILE_REJECTED", rejection);
+                return;
+            }
+
+            sendCommand("FILE_UPLOAD", file.id + ":" + file.key.getKey());
+            log(username + " is uploading " + file.name + " (" + FileTransfer.formatSize(size) + ")");
+        }
+
+        // Commands are a plain keyword line followed by one encrypted line,
+        // so the two must not interleave with other writers
+        public synchronized void sendCommand(String command, String payload) {
+            try {
+                String encrypted = rsa.encrypt(payload);
+                out.println(command);
+                out.println(encrypted);
+            } catch (IOException e) {
+                log("Failed to send " + command + " to " + username + ": " + e.getMessage());
+            }
+        }
+
+        public synchronized void sendMessage(String message) {
             try {
                 out.println(rsa.encrypt(message));
             } catch (IOException e) {
@@ -272,19 +505,202 @@ public class Server {
             }
         }
 
+        public synchronized void ping() {
+            out.println("PING");
+        }
+
+        public void reap(String reason) {
+            if (!disconnected.compareAndSet(false, true)) return;
+            reapedConnections.incrementAndGet();
+            log("Reaping " + (username != null ? username : socket.getRemoteSocketAddress()) + ": " + reason);
+            // A handler replaced by a newer login of the same user isn't a stale session
+            if (closeSession()) {
+                reapedSessions.add(username);
+            }
+        }
+
         public void disconnect() {
+            if (disconnected.compareAndSet(false, true)) {
+                closeSession();
+            }
+        }
+
+        // Returns whether this was still the user's active session
+        private boolean closeSession() {
             try {
                 if (socket != null && !socket.isClosed()) {
                     socket.close();
                 }
+            } catch (IOException e) {
+                log("Error disconnecting client: " + e.getMessage());
+            }
 
-                if (authenticated && username != null) {
-                    clients.remove(username);
-                    broadcast(username + " left the chat", this);
-                    log(username + " disconnected");
+            if (authenticated && username != null && clients.remove(username, this)) {
+                broadcast(username + " left the chat", this);
+                log(username + " disconnected");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class StagedFile {
+        private final String id = UUID.randomUUID().toString();
+        private final String name;
+        private final String sender;
+        private final long size;
+        private final AES key = new AES();
+        private final File path;
+        private volatile boolean complete = false;
+        private FileTransferHandler uploader;  // guarded by this
+        private boolean expired = false;       // guarded by this
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        public StagedFile(String name, String sender, long size) {
+            this.name = name;
+            this.sender = sender;
+            this.size = size;
+            this.path = new File(uploadDir, id);
+        }
+    }
+
+    // The data connection only ever moves ciphertext between the socket and the
+    // staged file, so the server never decrypts or buffers file contents
+    private class FileTransferHandler implements Runnable {
+        private final SocketChannel channel;
+        private volatile long lastSeen = System.currentTimeMillis();
+
+        public FileTransferHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            transfers.add(this);
+            try {
+                // PUT <id> | GET <id> <offset>
+                String[] header = FileTransfer.readLine(channel).split(" ");
+                StagedFile file = header.length >= 2 ? stagedFiles.get(header[1]) : null;
+
+                if (file == null) {
+                    FileTransfer.writeLine(channel, "ERR Unknown or expired transfer");
+                } else if ("PUT".equals(header[0])) {
+                    receive(file);
+                } else if ("GET".equals(header[0]) && header.length == 3) {
+                    send(file, Long.parseLong(header[2]));
+                } else {
+                    FileTransfer.writeLine(channel, "ERR Invalid request");
+                }
+            } catch (Exception e) {
+                if (channel.isOpen()) {
+                    log("File transfer error: " + e.getMessage());
                 }
+            } finally {
+                transfers.remove(this);
+                close();
+            }
+        }
+
+        private void receive(StagedFile file) throws IOException {
+            // Only one connection may write a staged file. A new PUT means the client gave up
+            // on the old connection, so it takes over instead of waiting for the reaper
+            FileTransferHandler previous;
+            synchronized (file) {
+                if (file.expired) {
+                    FileTransfer.writeLine(channel, "ERR Unknown or expired transfer");
+                    return;
+                }
+                if (file.complete) {
+                    FileTransfer.writeLine(channel, "ERR Upload already complete");
+                    return;
+                }
+                previous = file.uploader;
+                file.uploader = this;
+            }
+            if (previous != null) {
+                // A chunk it still flushes is the same ciphertext at the same offset, so it is harmless
+                log("Upload of " + file.name + " resumed on a new connection, closing the stalled one");
+                previous.close();
+            }
+
+            boolean completed = false;
+            try {
+                long position;
+                try (FileChannel staged = FileChannel.open(file.path.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    // Whatever already reached the disk doesn't need to be sent again
+                    position = Math.min(staged.size(), file.size);
+                    FileTransfer.writeLine(channel, "OK " + position);
+
+                    while (position < file.size) {
+                        long count = staged.transferFrom(channel, position,
+                                Math.min(FileTransfer.CHUNK_SIZE, file.size - position));
+                        if (count <= 0) break;
+                        position += count;
+                        lastSeen = System.currentTimeMillis();
+                        file.lastActivity = lastSeen;
+                    }
+                }
+
+                if (position < file.size) {
+                    log("Upload of " + file.name + " interrupted at " + FileTransfer.formatSize(position));
+                    return;
+                }
+
+                synchronized (file) {
+                    // Only the current uploader may complete (and announce) the file
+                    if (file.uploader == this && !file.complete) {
+                        file.complete = true;
+                        file.lastActivity = System.currentTimeMillis();
+                        completed = true;
+                    }
+                }
+            } finally {
+                synchronized (file) {
+                    if (file.uploader == this) {
+                        file.uploader = null;
+                    }
+                }
+            }
+            if (completed) {
+                announceFile(file);
+            }
+        }
+
+        private void send(StagedFile file, long offset) throws IOException {
+            if (!file.complete) {
+                FileTransfer.writeLine(channel, "ERR Upload still in progress");
+                return;
+            }
+            if (offset < 0 || offset > file.size) {
+                FileTransfer.writeLine(channel, "ERR Invalid offset");
+                return;
+            }
+
+            // A running download keeps the file from expiring under it
+            file.lastActivity = System.currentTimeMillis();
+            try (FileChannel staged = FileChannel.open(file.path.toPath(), StandardOpenOption.READ)) {
+                FileTransfer.writeLine(channel, "OK " + file.size);
+
+                long position = offset;
+                while (position < file.size) {
+                    long count = staged.transferTo(position,
+                            Math.min(FileTransfer.CHUNK_SIZE, file.size - position), channel);
+                    if (count <= 0) break;
+                    position += count;
+                    lastSeen = System.currentTimeMillis();
+                    file.lastActivity = lastSeen;
+                }
+            }
+            log("Sent " + file.name + " to " + channel.socket().getRemoteSocketAddress() +
+                    (offset > 0 ? " (resumed at " + FileTransfer.formatSize(offset) + ")" : ""));
+        }
+
+        public void close() {
+            try {
+                channel.close();
             } catch (IOException e) {
-                log("Error disconnecting client: " + e.getMessage());
+                log("Error closing file transfer: " + e.getMessage());
             }
         }
     }